@@ -0,0 +1,550 @@
+import org.openscience.cdk.Molecule;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.smiles.SmilesGenerator;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A memory-mapped store mapping canonical SMILES to the outcome of naming a
+ * molecule: its name, principal group and chain length, or the reason it
+ * could not be named. Repeated runs can then skip structures they have
+ * already seen, including ones that failed. Running out of budget depends on
+ * the budget and the machine's load rather than the structure, so those
+ * outcomes are not stored.
+ *
+ * The store is a small control file at the given path holding the current
+ * generation and the OrganicMolecule.NAMER_VERSION that produced the
+ * entries, and a data file per generation next to it (path.0, path.1 and
+ * so on). Opening a store written by another namer version empties it. A data file is a header, an open-addressing hash table of key hash
+ * to record offset, and an append-only area of records, so lookups do not
+ * need an index on the heap and opening a store does not scan it.
+ *
+ * Several processes may share one store: lookups hold a shared lock on the
+ * control file and writes an exclusive one. When the table gets half full or
+ * superseded records make up half the data, the live records are copied into
+ * the next generation's data file, which is only made current once it is
+ * complete; other processes switch to it the next time they take the lock.
+ * Open at most one NameStore per path in a process, since file locks are
+ * held per process.
+ */
+public class NameStore
+{
+    public static class Entry
+    {
+        public enum Status { Named, Failed }
+
+        private Status status;
+        private String text;
+        private OrganicMolecule.Group principal;
+        private int chainLength;
+
+        public Entry(String name, OrganicMolecule.Group principal, int chainLength)
+        {
+            this(Status.Named, name, principal, chainLength);
+        }
+
+        private Entry(Status status, String text, OrganicMolecule.Group principal, int chainLength)
+        {
+            this.status = status;
+            this.text = text;
+            this.principal = principal;
+            this.chainLength = chainLength;
+        }
+
+        public static Entry failure(CDKException e)
+        {
+            return new Entry(Status.Failed, e.getMessage() == null ? "" : e.getMessage(), null, 0);
+        }
+
+        public Status getStatus()
+        { return status; }
+
+        public String getIUPACName()
+        { return status == Status.Named ? text : null; }
+
+        public String getFailureMessage()
+        { return status == Status.Named ? null : text; }
+
+        public OrganicMolecule.Group getPrincipalGroup()
+        { return principal; }
+
+        public int getChainLength()
+        { return chainLength; }
+
+        private boolean sameAs(Entry other)
+        {
+            return status == other.status && text.equals(other.text) &&
+                principal == other.principal && chainLength == other.chainLength;
+        }
+    }
+
+    // Control file: int magic, int version, int generation, int namer version.
+    // Data file: int magic, int version, int slot count, int record count,
+    // long data end, long dead bytes, then the slots, then the records.
+    // A slot is a long record offset (0 when empty) and an int key hash.
+    // A record is byte status, byte principal group ordinal (-1 for none),
+    // int chain length, int key length, key, int text length, text.
+    // Bump VERSION whenever this layout or the Group enum changes.
+    private static final int MAGIC = 0x4f52474f;
+    private static final int VERSION = 2;
+    private static final int CONTROL_SIZE = 16;
+    private static final int GENERATION_OFFSET = 8;
+    private static final int NAMER_VERSION_OFFSET = 12;
+    private static final int SLOT_COUNT_OFFSET = 8;
+    private static final int RECORD_COUNT_OFFSET = 12;
+    private static final int DATA_END_OFFSET = 16;
+    private static final int DEAD_BYTES_OFFSET = 24;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 12;
+    private static final int RECORD_OVERHEAD = 14;
+    private static final int MIN_SLOTS = 1 << 10;
+    private static final int MIN_DATA = 1 << 16;
+    private static final long COMPACT_THRESHOLD = 1 << 20;
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File path;
+    private RandomAccessFile controlFile;
+    private FileChannel controlChannel;
+    private MappedByteBuffer control;
+    private int generation;
+    private RandomAccessFile dataFile;
+    private FileChannel dataChannel;
+    private MappedByteBuffer map;
+    private boolean staleFiles;
+
+    public NameStore(File path) throws IOException
+    {
+        this.path = path;
+        controlFile = new RandomAccessFile(path, "rw");
+        controlChannel = controlFile.getChannel();
+        FileLock lock = controlChannel.lock();
+        try
+        {
+            long size = controlChannel.size();
+            if (size == 0)
+            {
+                writeDataFile(0, MIN_SLOTS, MIN_DATA, null);
+                control = controlChannel.map(FileChannel.MapMode.READ_WRITE, 0, CONTROL_SIZE);
+                control.putInt(0, MAGIC);
+                control.putInt(4, VERSION);
+                control.putInt(GENERATION_OFFSET, 0);
+                control.putInt(NAMER_VERSION_OFFSET, OrganicMolecule.NAMER_VERSION);
+                control.force();
+            }
+            else
+            {
+                if (size != CONTROL_SIZE) throw new IOException(path + " is not a name store.");
+                control = controlChannel.map(FileChannel.MapMode.READ_WRITE, 0, CONTROL_SIZE);
+                if (control.getInt(0) != MAGIC || control.getInt(4) != VERSION)
+                    throw new IOException(path + " is not a name store of version " + VERSION + ".");
+            }
+            if (control.getInt(NAMER_VERSION_OFFSET) != OrganicMolecule.NAMER_VERSION)
+                resetLocked(control.getInt(GENERATION_OFFSET));
+            openDataFile(control.getInt(GENERATION_OFFSET));
+            sweepLocked();
+        }
+        catch (IOException e)
+        {
+            if (dataFile != null) dataFile.close();
+            controlChannel.close();
+            controlFile.close();
+            throw e;
+        }
+        finally
+        {
+            if (lock.isValid()) lock.release();
+        }
+    }
+
+    // SmilesGenerator is not thread-safe, so each key gets its own.
+    public String key(Molecule mol)
+    {
+        return new SmilesGenerator().createSMILES(mol);
+    }
+
+    public synchronized Entry lookup(String key) throws IOException
+    {
+        FileLock lock = controlChannel.lock(0, Long.MAX_VALUE, true);
+        try
+        {
+            if (!refresh()) return null;
+            byte[] keyBytes = key.getBytes(UTF8);
+            long offset = map.getLong(findSlot(map, keyBytes, hash(key)));
+            return offset == 0 ? null : readEntry(offset);
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    public Entry lookup(Molecule mol) throws IOException
+    {
+        return lookup(key(mol));
+    }
+
+    public synchronized void put(String key, Entry entry) throws IOException
+    {
+        byte[] keyBytes = key.getBytes(UTF8);
+        byte[] textBytes = entry.text.getBytes(UTF8);
+        int hash = hash(key);
+        int recordSize = RECORD_OVERHEAD + keyBytes.length + textBytes.length;
+        FileLock lock = controlChannel.lock();
+        try
+        {
+            if (!refresh()) return;
+            if (staleFiles) sweepLocked();
+            int slot = findSlot(map, keyBytes, hash);
+            long old = map.getLong(slot);
+            if (old != 0 && readEntry(old).sameAs(entry)) return;
+            if (old == 0 && (map.getInt(RECORD_COUNT_OFFSET) + 1) * 2L > map.getInt(SLOT_COUNT_OFFSET))
+            {
+                compactLocked(map.getInt(SLOT_COUNT_OFFSET) * 2, recordSize);
+                slot = findSlot(map, keyBytes, hash);
+            }
+            long end = map.getLong(DATA_END_OFFSET);
+            if (end + recordSize > map.capacity())
+            {
+                if (end + recordSize > MAX_SIZE) throw new IOException("Name store " + path + " is full.");
+                map = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.min(MAX_SIZE, Math.max(map.capacity() * 2L, end + recordSize)));
+            }
+            writeRecord(map, (int)end, keyBytes, entry, textBytes);
+            // The record is committed before the slot points at it, so a
+            // writer killed in between leaves only unreferenced bytes behind.
+            map.putLong(DATA_END_OFFSET, end + recordSize);
+            map.putInt(slot + 8, hash);
+            map.putLong(slot, end);
+            if (old == 0) map.putInt(RECORD_COUNT_OFFSET, map.getInt(RECORD_COUNT_OFFSET) + 1);
+            else
+            {
+                long dead = map.getLong(DEAD_BYTES_OFFSET) + recordSize(old);
+                map.putLong(DEAD_BYTES_OFFSET, dead);
+                if (dead > COMPACT_THRESHOLD && dead * 2 > end + recordSize)
+                    compactLocked(map.getInt(SLOT_COUNT_OFFSET), 0);
+            }
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /**
+     * Looks up the molecule, naming it within the given budget and storing
+     * the outcome if it has not been seen before. A molecule that failed
+     * before throws a CDKException again without being renamed; one that ran
+     * out of budget is tried again next time.
+     */
+    public Entry name(Molecule mol, NamingBudget budget) throws CDKException, IOException
+    {
+        // Generating the key cannot be interrupted, so charge it up front at
+        // one visit per atom; the visit limit then bounds which molecules are
+        // keyed at all.
+        budget.start();
+        budget.visit(mol.getAtomCount());
+        String key = key(mol);
+        Entry entry = lookup(key);
+        if (entry == null)
+        {
+            try
+            {
+                OrganicMolecule x = new OrganicMolecule(mol, budget);
+                entry = new Entry(x.getIUPACName(), x.getPrincipalGroup(), x.getChainLength());
+            }
+            catch (NamingTimeoutException e)
+            {
+                throw e;
+            }
+            catch (CDKException e)
+            {
+                put(key, Entry.failure(e));
+                throw e;
+            }
+            put(key, entry);
+        }
+        if (entry.getStatus() == Entry.Status.Failed) throw new CDKException(entry.getFailureMessage());
+        return entry;
+    }
+
+    /**
+     * Copies the live records into a new data file sized to fit them, and
+     * deletes the old one.
+     */
+    public synchronized void compact() throws IOException
+    {
+        FileLock lock = controlChannel.lock();
+        try
+        {
+            if (!refresh()) return;
+            int slots = MIN_SLOTS;
+            while (map.getInt(RECORD_COUNT_OFFSET) * 2L > slots) slots *= 2;
+            compactLocked(slots, 0);
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        map.force();
+        dataChannel.close();
+        dataFile.close();
+        controlChannel.close();
+        controlFile.close();
+    }
+
+    private static int hash(String key)
+    {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private File dataPath(int gen)
+    {
+        return new File(path.getPath() + "." + gen);
+    }
+
+    // Must be called while holding an exclusive lock on the control file.
+    private void compactLocked(int slots, int spare) throws IOException
+    {
+        long live = map.getLong(DATA_END_OFFSET) - tableEnd(map) - map.getLong(DEAD_BYTES_OFFSET);
+        long data = Math.max(MIN_DATA, live * 2 + spare);
+        if (HEADER_SIZE + (long)slots * SLOT_SIZE + live + spare > MAX_SIZE)
+            throw new IOException("Name store " + path + " is full.");
+        int gen = generation + 1;
+        writeDataFile(gen, slots, Math.min(data, MAX_SIZE - HEADER_SIZE - (long)slots * SLOT_SIZE), map);
+        // Only now does the new file become current; a writer killed before
+        // this point leaves the old generation intact.
+        control.putInt(GENERATION_OFFSET, gen);
+        control.force();
+        openDataFile(gen);
+        sweepLocked();
+    }
+
+    // Replaces the entries of another namer version with an empty data file.
+    // Must be called while holding an exclusive lock on the control file.
+    private void resetLocked(int oldGen) throws IOException
+    {
+        int gen = oldGen + 1;
+        writeDataFile(gen, MIN_SLOTS, MIN_DATA, null);
+        // The generation is switched before the namer version, so a writer
+        // killed in between leaves an empty store that is reset again.
+        control.putInt(GENERATION_OFFSET, gen);
+        control.putInt(NAMER_VERSION_OFFSET, OrganicMolecule.NAMER_VERSION);
+        control.force();
+    }
+
+    /**
+     * Deletes the data files of every generation but the current one. Some
+     * systems refuse to delete a file another process still has mapped; such
+     * files are retried on this process's next write, and on every open and
+     * compaction. Must be called while holding an exclusive lock on the
+     * control file.
+     */
+    private void sweepLocked()
+    {
+        staleFiles = false;
+        File dir = path.getAbsoluteFile().getParentFile();
+        String prefix = path.getName() + ".";
+        String[] names = dir.list();
+        if (names == null) return;
+        for (String name : names)
+        {
+            if (!name.startsWith(prefix) || name.length() == prefix.length()) continue;
+            String suffix = name.substring(prefix.length());
+            boolean numeric = true;
+            for (char c : suffix.toCharArray()) numeric &= Character.isDigit(c);
+            if (!numeric || suffix.equals(Integer.toString(generation))) continue;
+            if (!new File(dir, name).delete()) staleFiles = true;
+        }
+    }
+
+    private void writeDataFile(int gen, int slots, long data, MappedByteBuffer from) throws IOException
+    {
+        File file = dataPath(gen);
+        if (file.exists() && !file.delete()) throw new IOException("Could not replace " + file + ".");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer to = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)slots * SLOT_SIZE + data);
+            to.putInt(0, MAGIC);
+            to.putInt(4, VERSION);
+            to.putInt(SLOT_COUNT_OFFSET, slots);
+            long end = tableEnd(to);
+            int count = 0;
+            if (from != null)
+            {
+                int fromSlots = from.getInt(SLOT_COUNT_OFFSET);
+                for (int i = 0; i < fromSlots; i++)
+                {
+                    int fromSlot = HEADER_SIZE + i * SLOT_SIZE;
+                    long offset = from.getLong(fromSlot);
+                    if (offset == 0) continue;
+                    int hash = from.getInt(fromSlot + 8);
+                    byte[] record = readBytes(from, (int)offset, recordSize(offset));
+                    writeBytes(to, (int)end, record);
+                    int slot = findSlot(to, null, hash);
+                    to.putInt(slot + 8, hash);
+                    to.putLong(slot, end);
+                    end += record.length;
+                    count++;
+                }
+            }
+            to.putInt(RECORD_COUNT_OFFSET, count);
+            to.putLong(DATA_END_OFFSET, end);
+            to.putLong(DEAD_BYTES_OFFSET, 0);
+            to.force();
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private void openDataFile(int gen) throws IOException
+    {
+        File file = dataPath(gen);
+        if (!file.exists()) throw new IOException(file + " is missing.");
+        if (dataFile != null)
+        {
+            // Java cannot unmap a buffer; dropping the reference lets the old
+            // mapping go at the next collection so its file can be swept.
+            map = null;
+            dataChannel.close();
+            dataFile.close();
+        }
+        dataFile = new RandomAccessFile(file, "rw");
+        dataChannel = dataFile.getChannel();
+        generation = gen;
+        remap();
+        int slots = map.getInt(SLOT_COUNT_OFFSET);
+        if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION ||
+            slots <= 0 || (slots & (slots - 1)) != 0 || tableEnd(map) > map.getLong(DATA_END_OFFSET))
+            throw new IOException(file + " is corrupt.");
+    }
+
+    private void remap() throws IOException
+    {
+        long size = dataChannel.size();
+        if (size > MAX_SIZE) throw new IOException(dataPath(generation) + " is corrupt.");
+        map = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    // Must be called while holding a lock on the control file. Returns false
+    // if another process has since reset the store for a different namer
+    // version, whose entries this process must neither read nor write.
+    private boolean refresh() throws IOException
+    {
+        int gen = control.getInt(GENERATION_OFFSET);
+        if (gen != generation) openDataFile(gen);
+        else if (dataChannel.size() != map.capacity()) remap();
+        if (map.getLong(DATA_END_OFFSET) > map.capacity()) throw new IOException(dataPath(generation) + " is corrupt.");
+        return control.getInt(NAMER_VERSION_OFFSET) == OrganicMolecule.NAMER_VERSION;
+    }
+
+    private static long tableEnd(ByteBuffer buf)
+    {
+        return HEADER_SIZE + (long)buf.getInt(SLOT_COUNT_OFFSET) * SLOT_SIZE;
+    }
+
+    /**
+     * Returns the position of the slot holding the key, or of the empty slot
+     * where it would go. With no key, returns the first empty slot for the
+     * hash.
+     */
+    private int findSlot(MappedByteBuffer buf, byte[] keyBytes, int hash) throws IOException
+    {
+        int mask = buf.getInt(SLOT_COUNT_OFFSET) - 1;
+        for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++)
+        {
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            long offset = buf.getLong(slot);
+            if (offset == 0) return slot;
+            if (keyBytes != null && buf.getInt(slot + 8) == hash)
+            {
+                checkRecord(offset);
+                int keyLength = buf.getInt((int)offset + 6);
+                if (keyLength == keyBytes.length && Arrays.equals(readBytes(buf, (int)offset + 10, keyLength), keyBytes))
+                    return slot;
+            }
+        }
+        throw new IOException(dataPath(generation) + " is corrupt.");
+    }
+
+    private void checkRecord(long offset) throws IOException
+    {
+        long end = map.getLong(DATA_END_OFFSET);
+        boolean valid = offset >= tableEnd(map) && offset + RECORD_OVERHEAD <= end;
+        if (valid)
+        {
+            long keyLength = map.getInt((int)offset + 6);
+            valid = keyLength >= 0 && offset + RECORD_OVERHEAD + keyLength <= end;
+            if (valid)
+            {
+                long textLength = map.getInt((int)(offset + 10 + keyLength));
+                valid = textLength >= 0 && offset + RECORD_OVERHEAD + keyLength + textLength <= end;
+            }
+        }
+        if (!valid) throw new IOException(dataPath(generation) + " is corrupt.");
+    }
+
+    private int recordSize(long offset) throws IOException
+    {
+        checkRecord(offset);
+        int keyLength = map.getInt((int)offset + 6);
+        return RECORD_OVERHEAD + keyLength + map.getInt((int)offset + 10 + keyLength);
+    }
+
+    private static void writeRecord(MappedByteBuffer buf, int pos, byte[] keyBytes, Entry entry, byte[] textBytes)
+    {
+        buf.put(pos, (byte)entry.status.ordinal());
+        buf.put(pos + 1, (byte)(entry.principal == null ? -1 : entry.principal.ordinal()));
+        buf.putInt(pos + 2, entry.chainLength);
+        buf.putInt(pos + 6, keyBytes.length);
+        writeBytes(buf, pos + 10, keyBytes);
+        buf.putInt(pos + 10 + keyBytes.length, textBytes.length);
+        writeBytes(buf, pos + 14 + keyBytes.length, textBytes);
+    }
+
+    private Entry readEntry(long offset) throws IOException
+    {
+        checkRecord(offset);
+        int pos = (int)offset;
+        int status = map.get(pos);
+        int principal = map.get(pos + 1);
+        int chainLength = map.getInt(pos + 2);
+        int keyLength = map.getInt(pos + 6);
+        int textLength = map.getInt(pos + 10 + keyLength);
+        if (status < 0 || status >= Entry.Status.values().length || principal < -1 || principal >= OrganicMolecule.Group.values().length)
+            throw new IOException(dataPath(generation) + " is corrupt.");
+        String text = new String(readBytes(map, pos + 14 + keyLength, textLength), UTF8);
+        return new Entry(Entry.Status.values()[status], text,
+            principal < 0 ? null : OrganicMolecule.Group.values()[principal], chainLength);
+    }
+
+    private static byte[] readBytes(ByteBuffer buf, int pos, int length)
+    {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buf.duplicate();
+        view.position(pos);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(ByteBuffer buf, int pos, byte[] bytes)
+    {
+        ByteBuffer view = buf.duplicate();
+        view.position(pos);
+        view.put(bytes);
+    }
+}
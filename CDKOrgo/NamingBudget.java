@@ -0,0 +1,67 @@
+/**
+ * Limits the work done while naming a single molecule. The chain finder and
+ * namer call visit() as they walk the structure; once the wall-clock deadline
+ * passes or too many atoms have been visited, visit() throws a
+ * NamingTimeoutException so the caller can give up on that molecule.
+ *
+ * The clock starts when start() is first called, which OrganicMolecule does
+ * as soon as naming begins, so a budget may be created ahead of time; each
+ * budget should only be used for one molecule.
+ */
+public class NamingBudget
+{
+    private static final int CLOCK_CHECK_INTERVAL = 64;
+
+    private final long timeoutNanos;
+    private final long maxVisits;
+    private long deadline;
+    private boolean started;
+    private long visits;
+
+    /**
+     * @param timeoutMillis wall-clock time allowed, or 0 for no time limit
+     * @param maxVisits number of atom visits allowed, or 0 for no limit
+     */
+    public NamingBudget(long timeoutMillis, long maxVisits)
+    {
+        if (timeoutMillis < 0) throw new IllegalArgumentException("Time limit must not be negative.");
+        if (maxVisits < 0) throw new IllegalArgumentException("Visit limit must not be negative.");
+        this.timeoutNanos = Math.min(timeoutMillis, Long.MAX_VALUE / 2000000L) * 1000000L;
+        this.maxVisits = maxVisits;
+    }
+
+    public static NamingBudget unlimited()
+    { return new NamingBudget(0, 0); }
+
+    public long getVisits()
+    { return visits; }
+
+    /**
+     * Starts the clock, unless it is already running.
+     */
+    public void start()
+    {
+        if (started) return;
+        deadline = System.nanoTime() + timeoutNanos;
+        started = true;
+    }
+
+    public void visit() throws NamingTimeoutException
+    {
+        visit(1);
+    }
+
+    /**
+     * Charges several visits at once, for work done outside the walks, and
+     * always checks the clock when more than one is charged.
+     */
+    public void visit(long count) throws NamingTimeoutException
+    {
+        if (!started) start();
+        visits += count;
+        if (maxVisits != 0 && visits > maxVisits)
+            throw new NamingTimeoutException("Atom visit limit of " + maxVisits + " exceeded.");
+        if (timeoutNanos != 0 && (count > 1 || visits % CLOCK_CHECK_INTERVAL == 0) && System.nanoTime() - deadline > 0)
+            throw new NamingTimeoutException("Time limit exceeded after " + visits + " atom visits.");
+    }
+}
@@ -0,0 +1,14 @@
+import org.openscience.cdk.exception.CDKException;
+
+/**
+ * Thrown when naming a molecule runs past its NamingBudget.
+ */
+public class NamingTimeoutException extends CDKException
+{
+    private static final long serialVersionUID = 1L;
+
+    public NamingTimeoutException(String message)
+    {
+        super(message);
+    }
+}
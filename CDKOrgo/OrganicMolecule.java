@@ -7,16 +7,29 @@ public class OrganicMolecule extends Molecule
 {
     public enum Group { Alkyl, Alkenyl, Alkynyl, Imine, Amine, Sulfhydryl, Hydroxyl, Carbonyl, Formyl, Nitrile, Carboxyl }
     
+    // Bump whenever a change here can give a molecule a different name or
+    // outcome, so that names saved in a NameStore are discarded.
+    public static final int NAMER_VERSION = 1;
+    
     private IAtom[] chain;
     private String name;
     private Group principal;
+    private NamingBudget budget;
     
     public OrganicMolecule(Molecule mol) throws CDKException
+    {
+        this(mol, NamingBudget.unlimited());
+    }
+    
+    public OrganicMolecule(Molecule mol, NamingBudget budget) throws CDKException
     {
         super(mol);
+        this.budget = budget;
+        budget.start();
         boolean containsCarbon = false;
         for (IAtom atom : atoms())
         {
+            budget.visit();
             if (atom.getSymbol().equals("C"))
             {
                 containsCarbon = true;
@@ -46,8 +59,11 @@ public class OrganicMolecule extends Molecule
     
     public String getIUPACName()
     { return name; }
+    
+    public Group getPrincipalGroup()
+    { return principal; }
 
-    private boolean verifyOrder()
+    private boolean verifyOrder() throws NamingTimeoutException
     {
         List<Integer> locs = principalGroupLocations();
         if (locs.size() == 0) return true;
@@ -106,18 +122,19 @@ public class OrganicMolecule extends Molecule
         else return Group.Alkyl;
     }
 
-    private Group principalGroup()
+    private Group principalGroup() throws NamingTimeoutException
     {
         Group highest = Group.Alkyl;
         for (int i = 0; i < chain.length; i++)
         {
+            budget.visit();
             Group g = highestPrecedenceGroup(i);
             if (g.compareTo(highest) > 0) highest = g;
         }
         return highest;
     }
 
-    private List<Integer> principalGroupLocations()
+    private List<Integer> principalGroupLocations() throws NamingTimeoutException
     {            
         Group highest = principalGroup();
         if (highest == Group.Alkyl) return sideChainLocations();
@@ -126,17 +143,19 @@ public class OrganicMolecule extends Molecule
             List<Integer> locs = new ArrayList<Integer>();
             for (int i = 0; i < chain.length; i++)
             {
+                budget.visit();
                 if (highestPrecedenceGroup(i) == highest) locs.add(i);
             }
             return locs;
         }
     }
     
-    private List<Integer> sideChainLocations()
+    private List<Integer> sideChainLocations() throws NamingTimeoutException
     {
         List<Integer> locs = new ArrayList<Integer>();
         for (int i = 0; i < chain.length; i++)
         {
+            budget.visit();
             for (IBond bond : getConnectedBondsList(chain[i]))
             {
                 if (bond.getOrder() == IBond.Order.SINGLE && !isInChain(bond.getConnectedAtom(chain[i]), i)) locs.add(i);
@@ -145,6 +164,59 @@ public class OrganicMolecule extends Molecule
         return locs;
     }
 
+    /**
+     * A depth-first walk away from a parent atom, kept on an explicit stack so
+     * that large structures cannot overflow the call stack. Each atom taken
+     * from the stack is charged to the budget. The walks only exclude the
+     * atom they came from, so reaching an atom twice means a ring.
+     */
+    private class Walk
+    {
+        private List<IAtom> atoms = new ArrayList<IAtom>();
+        private List<IAtom> parents = new ArrayList<IAtom>();
+        private List<Integer> depths = new ArrayList<Integer>();
+        private Set<IAtom> seen = new HashSet<IAtom>();
+        private IAtom atom;
+        private IAtom parent;
+        private int depth;
+
+        public Walk(IAtom start, IAtom parent)
+        {
+            seen.add(start);
+            atoms.add(start);
+            parents.add(parent);
+            depths.add(0);
+        }
+
+        public boolean next() throws NamingTimeoutException
+        {
+            if (atoms.isEmpty()) return false;
+            int last = atoms.size() - 1;
+            atom = atoms.remove(last);
+            parent = parents.remove(last);
+            depth = depths.remove(last);
+            budget.visit();
+            return true;
+        }
+
+        public void push(IAtom child) throws CDKException
+        {
+            if (!seen.add(child)) throw new CDKException("Molecule contains a ring.");
+            atoms.add(child);
+            parents.add(atom);
+            depths.add(depth + 1);
+        }
+
+        public IAtom atom()
+        { return atom; }
+
+        public IAtom parent()
+        { return parent; }
+
+        public int depth()
+        { return depth; }
+    }
+
     private boolean isInChain(IAtom b, int parentIndex)
     {
         if (!b.getSymbol().equals("C")) return false;
@@ -156,17 +228,25 @@ public class OrganicMolecule extends Molecule
     private class CarbonChainFinder
     {
         private List<IAtom> chain = new ArrayList<IAtom>();
+        private Set<IAtom> members = new HashSet<IAtom>();
         
-        private void assignCarbonChain()
+        private void addToChain(IAtom a) throws CDKException
+        {
+            if (!members.add(a)) throw new CDKException("Molecule contains a ring.");
+            chain.add(a);
+        }
+        
+        private void assignCarbonChain() throws CDKException
         {
             IAtom start = null;
             for (IAtom atom : atoms())
             {
+                budget.visit();
                 if (atom.getSymbol().equals("C") && isNonAlkyl(atom))
                     start = atom;
             }
             if (start == null) start = atomWithLongestChain();
-            chain.add(start);
+            addToChain(start);
             assignChildren(start, null);
             IAtom startChild = null;
             List<IAtom> startChildren = getConnectedAtomsList(start);
@@ -182,43 +262,46 @@ public class OrganicMolecule extends Molecule
             assignChildren(start, startChild);
         }
         
-        private void assignChildren(IAtom a, IAtom parent)
+        private void assignChildren(IAtom a, IAtom parent) throws CDKException
         {
-            for (IAtom child : getConnectedAtomsList(a))
+            while (a != null)
             {
-                if (child != parent && child.getSymbol().equals("C"))
+                budget.visit();
+                IAtom next = null;
+                for (IAtom child : getConnectedAtomsList(a))
                 {
-                    if (hasNonAlkylChild(child, a))
+                    if (child != parent && child.getSymbol().equals("C") && hasNonAlkylChild(child, a))
                     {
-                        chain.add(child);
-                        assignChildren(child, a);
-                        return;
+                        next = child;
+                        break;
                     }
                 }
-            }
-            IAtom child = childWithLongestChain(a, parent);
-            if (child != null)
-            {
-                chain.add(child);
-                assignChildren(child, a);
+                if (next == null) next = childWithLongestChain(a, parent);
+                if (next != null) addToChain(next);
+                parent = a;
+                a = next;
             }
         }
         
-        private boolean hasNonAlkylChild(IAtom a, IAtom parent)
+        private boolean hasNonAlkylChild(IAtom a, IAtom parent) throws CDKException
         {
-            for (IBond bond : getConnectedBondsList(a))
+            Walk walk = new Walk(a, parent);
+            while (walk.next())
             {
-                IAtom target = bond.getConnectedAtom(a);
-                if (target != parent)
+                for (IBond bond : getConnectedBondsList(walk.atom()))
                 {
-                    if (!target.getSymbol().equals("C") || bond.getOrder() != IBond.Order.SINGLE) return true;
-                    if (hasNonAlkylChild(target, a)) return true;
+                    IAtom target = bond.getConnectedAtom(walk.atom());
+                    if (target != walk.parent())
+                    {
+                        if (!target.getSymbol().equals("C") || bond.getOrder() != IBond.Order.SINGLE) return true;
+                        walk.push(target);
+                    }
                 }
             }
             return false;
         }
 
-        private IAtom childWithLongestChain(IAtom a, IAtom parent)
+        private IAtom childWithLongestChain(IAtom a, IAtom parent) throws CDKException
         {
             int max = 0;
             IAtom maxChild = null;
@@ -234,20 +317,22 @@ public class OrganicMolecule extends Molecule
             return maxChild;
         }
 
-        private int longestChildChain(IAtom a,IAtom parent)
+        private int longestChildChain(IAtom a,IAtom parent) throws CDKException
         {
+            Walk walk = new Walk(a, parent);
             int max = 0;
-            for (IAtom child : getConnectedAtomsList(a))
+            while (walk.next())
             {
-                if (child != parent && child.getSymbol().equals("C"))
+                max = Math.max(max, walk.depth());
+                for (IAtom child : getConnectedAtomsList(walk.atom()))
                 {
-                    max = Math.max(max, longestChildChain(child, a) + 1);
+                    if (child != walk.parent() && child.getSymbol().equals("C")) walk.push(child);
                 }
             }
             return max;
         }
         
-        private IAtom atomWithLongestChain()
+        private IAtom atomWithLongestChain() throws CDKException
         {
             int maxLength = 0;
             IAtom atom = null;
@@ -274,11 +359,12 @@ public class OrganicMolecule extends Molecule
             return false;
         }
         
-        private boolean verifyChain()
+        private boolean verifyChain() throws NamingTimeoutException
         {
             for (IAtom atom : atoms())
             {
-                if (atom.getSymbol().equals("C") && isNonAlkyl(atom) && !chain.contains(atom)) return false;
+                budget.visit();
+                if (atom.getSymbol().equals("C") && isNonAlkyl(atom) && !members.contains(atom)) return false;
             }
             return true;
         }
@@ -288,7 +374,7 @@ public class OrganicMolecule extends Molecule
             int bondedCInChain = 0;
             for (IAtom atom : getConnectedAtomsList(a))
             {
-                if (chain.contains(atom)) bondedCInChain++;
+                if (members.contains(atom)) bondedCInChain++;
             }
             return bondedCInChain < 2;
         }
@@ -300,6 +386,7 @@ public class OrganicMolecule extends Molecule
             IAtom[] chainArray = new IAtom[chain.size()];
             for (IAtom a : chain)
             {
+                budget.visit();
                 if (isEnd(a))
                 {
                     chainArray[0] = a;
@@ -309,9 +396,10 @@ public class OrganicMolecule extends Molecule
             IAtom parent = null;
             for (int i = 1; i < chainArray.length; i++)
             {
+                budget.visit();
                 for (IAtom a : getConnectedAtomsList(chainArray[i - 1]))
                 {
-                    if (a.getSymbol().equals("C") && a != parent && chain.contains(a))
+                    if (a.getSymbol().equals("C") && a != parent && members.contains(a))
                     {
                         parent = chainArray[i - 1];
                         chainArray[i] = a;
@@ -328,10 +416,11 @@ public class OrganicMolecule extends Molecule
         private Map<String, List<Integer>> prefixes = new Hashtable<String, List<Integer>>();
         private Map<String, List<Integer>> suffixes = new Hashtable<String, List<Integer>>();
 
-        private void enumerateChain()
+        private void enumerateChain() throws CDKException
         {
             for (int i = 0; i < chain.length; i++)
             {
+                budget.visit();
                 for (IBond bond : getConnectedBondsList(chain[i]))
                 {
                     String symbol = bond.getConnectedAtom(chain[i]).getSymbol();
@@ -421,7 +510,7 @@ public class OrganicMolecule extends Molecule
             }
         }
 
-        public String getName()
+        public String getName() throws CDKException
         {
             enumerateChain();
             String suffix = getSuffix();
@@ -448,13 +537,23 @@ public class OrganicMolecule extends Molecule
             return prefix;
         }
 
-        private int alkylLength(IAtom b, IAtom parent)
+        private int alkylLength(IAtom b, IAtom parent) throws CDKException
         {
-            for (IAtom child : getConnectedAtomsList(b))
+            Walk walk = new Walk(b, parent);
+            int length = 0;
+            while (walk.next())
             {
-                if (child != parent) return alkylLength(child, b) + 1;
+                length = walk.depth() + 1;
+                for (IAtom child : getConnectedAtomsList(walk.atom()))
+                {
+                    if (child != walk.parent())
+                    {
+                        walk.push(child);
+                        break;
+                    }
+                }
             }
-            return 1;
+            return length;
         }
 
         private String getSuffix()
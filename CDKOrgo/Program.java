@@ -9,8 +9,38 @@ import java.io.*;
 
 public class Program
 {
+    /**
+     * Usage: Program [-timeout millis] [-maxvisits atoms] [store]
+     */
     public static void main(String[] args)
     {
+        long timeout = 0;
+        long maxVisits = 0;
+        String storePath = null;
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                if (args[i].equals("-timeout") || args[i].equals("-maxvisits"))
+                {
+                    if (i + 1 == args.length) throw new IllegalArgumentException(args[i] + " needs a value.");
+                    long value = parseLimit(args[i], args[i + 1]);
+                    if (args[i].equals("-timeout")) timeout = value;
+                    else maxVisits = value;
+                    i++;
+                }
+                else if (args[i].startsWith("-")) throw new IllegalArgumentException("Unknown option " + args[i] + ".");
+                else if (storePath != null) throw new IllegalArgumentException("Only one store may be given.");
+                else storePath = args[i];
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            JOptionPane.showMessageDialog(null, e.getMessage() +
+                "\nUsage: Program [-timeout millis] [-maxvisits atoms] [store]",
+                "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
         JFileChooser chooser = new JFileChooser();
         chooser.setFileFilter(new javax.swing.filechooser.FileFilter()
         {
@@ -36,9 +66,23 @@ public class Program
                 {
                     ChemFile cf = new ChemFile();
                     cf = (ChemFile)reader.read(cf);
-                    OrganicMolecule x = new OrganicMolecule(
-                        new Molecule(ChemFileManipulator.getAllAtomContainers(cf).get(0)));
-                    JOptionPane.showMessageDialog(null, x.getIUPACName(),
+                    Molecule mol = new Molecule(ChemFileManipulator.getAllAtomContainers(cf).get(0));
+                    NamingBudget budget = new NamingBudget(timeout, maxVisits);
+                    String name;
+                    if (storePath != null)
+                    {
+                        NameStore store = new NameStore(new File(storePath));
+                        try
+                        {
+                            name = store.name(mol, budget).getIUPACName();
+                        }
+                        finally
+                        {
+                            store.close();
+                        }
+                    }
+                    else name = new OrganicMolecule(mol, budget).getIUPACName();
+                    JOptionPane.showMessageDialog(null, name,
                         "Organic molecule name", JOptionPane.INFORMATION_MESSAGE);
                 }
                 catch (CDKException e2)
@@ -47,11 +91,24 @@ public class Program
                         "Error", JOptionPane.ERROR_MESSAGE);
                 }
             }
-            catch (FileNotFoundException e1)
+            catch (IOException e1)
             {
                 JOptionPane.showMessageDialog(null, e1.getMessage(),
                     "Error", JOptionPane.ERROR_MESSAGE);
             }
         }
     }
+
+    private static long parseLimit(String option, String value)
+    {
+        try
+        {
+            long limit = Long.parseLong(value);
+            if (limit >= 0) return limit;
+        }
+        catch (NumberFormatException e)
+        {
+        }
+        throw new IllegalArgumentException(option + " needs a whole number of at least 0, not " + value + ".");
+    }
 }
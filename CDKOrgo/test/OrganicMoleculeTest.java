@@ -0,0 +1,51 @@
+import org.openscience.cdk.Atom;
+import org.openscience.cdk.Molecule;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.exception.CDKException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class OrganicMoleculeTest
+{
+    private static Molecule carbonChain(int length, boolean closed)
+    {
+        Molecule mol = new Molecule();
+        for (int i = 0; i < length; i++) mol.addAtom(new Atom("C"));
+        for (int i = 1; i < length; i++) mol.addBond(i - 1, i, IBond.Order.SINGLE);
+        if (closed) mol.addBond(length - 1, 0, IBond.Order.SINGLE);
+        return mol;
+    }
+
+    @Test
+    public void namesHexane() throws CDKException
+    {
+        assertEquals("hexane", new OrganicMolecule(carbonChain(6, false)).getIUPACName());
+    }
+
+    @Test
+    public void rejectsCyclohexane()
+    {
+        try
+        {
+            new OrganicMolecule(carbonChain(6, true), new NamingBudget(1000, 0));
+            fail("Cyclohexane was named.");
+        }
+        catch (CDKException e)
+        {
+            assertEquals(CDKException.class, e.getClass());
+            assertEquals("Molecule contains a ring.", e.getMessage());
+        }
+    }
+
+    @Test(expected = NamingTimeoutException.class)
+    public void stopsAtVisitLimit() throws CDKException
+    {
+        new OrganicMolecule(carbonChain(6, false), new NamingBudget(0, 10));
+    }
+
+    @Test(expected = NamingTimeoutException.class)
+    public void stopsOnLongChainAtVisitLimit() throws CDKException
+    {
+        new OrganicMolecule(carbonChain(200000, false), new NamingBudget(0, 1000000));
+    }
+}